@@ -0,0 +1,92 @@
+package com.example.android.newsfeed;
+
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * In-memory LRU cache of article html bodies, keyed by Guardian content id. Bodies are kept
+ * gzip compressed and the cache is bounded by their compressed size, so it holds several
+ * times more articles than it would as plain strings.
+ */
+public final class ArticleCache {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = ArticleCache.class.getSimpleName();
+
+    /**
+     * Upper bound on the compressed bytes held by the cache
+     */
+    private static final int MAX_COMPRESSED_BYTES = 2 * 1024 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+    private static final LruCache <String, byte[]> sCache =
+            new LruCache <String, byte[]>( MAX_COMPRESSED_BYTES ) {
+                @Override
+                protected int sizeOf(String id, byte[] compressed) {
+                    return compressed.length;
+                }
+            };
+
+    private ArticleCache() {
+    }
+
+    /**
+     * Returns true if the body for the given article is cached.
+     */
+    public static boolean contains(String id) {
+        return sCache.get( id ) != null;
+    }
+
+    /**
+     * Compress and store the body for the given article.
+     */
+    public static void put(String id, String body) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            GZIPOutputStream gzip = new GZIPOutputStream( bytes );
+            gzip.write( body.getBytes( UTF_8 ) );
+            gzip.close();
+        } catch (IOException e) {
+            Log.e( LOG_TAG, "Problem compressing the article body.", e );
+            return;
+        }
+        sCache.put( id, bytes.toByteArray() );
+    }
+
+    /**
+     * Returns the body for the given article, or null if it is not cached.
+     */
+    public static String get(String id) {
+        byte[] compressed = sCache.get( id );
+        if (compressed == null) {
+            return null;
+        }
+        try {
+            InputStream gzip = new GZIPInputStream( new ByteArrayInputStream( compressed ) );
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream( compressed.length * 4 );
+            byte[] buffer = new byte[8192];
+            int read = gzip.read( buffer );
+            while (read != -1) {
+                bytes.write( buffer, 0, read );
+                read = gzip.read( buffer );
+            }
+            gzip.close();
+            return new String( bytes.toByteArray(), UTF_8 );
+        } catch (IOException e) {
+            Log.e( LOG_TAG, "Problem decompressing the article body.", e );
+            sCache.remove( id );
+            return null;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.example.android.newsfeed;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Downloads the bodies of the visible articles in the background and puts them in the
+ * {@link ArticleCache}, so {@link ReaderActivity} can show them without a network round trip.
+ * <p>
+ * Prefetching stops once {@link #BYTE_BUDGET} bytes have been downloaded in this process,
+ * and goes through {@link RequestGovernor} so it respects the rate limit and never uses up
+ * the quota the user's own requests need. Opening an article whose prefetch is still
+ * queued or running reuses that download. Prefetch hit rate and open latency are logged on
+ * every open.
+ */
+public final class ArticlePrefetcher {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = ArticlePrefetcher.class.getSimpleName();
+
+    /**
+     * Most rows prefetched per call, starting from the top of the visible rows
+     */
+    private static final int MAX_ROWS_PER_PASS = 5;
+
+    /**
+     * Response bytes that may be downloaded for prefetching in this process
+     */
+    private static final long BYTE_BUDGET = 2 * 1024 * 1024;
+
+    /**
+     * Single background thread, so prefetches go out one at a time
+     */
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor();
+
+    /**
+     * Downloads queued or running, by content id
+     */
+    private static final Map <String, Download> sInFlight = new HashMap <>();
+
+    private static long sBytesFetched;
+
+    private static int sOpens;
+    private static int sPrefetchHits;
+    private static long sHitLatencyMillis;
+    private static long sMissLatencyMillis;
+
+    private ArticlePrefetcher() {
+    }
+
+    /**
+     * Queue the bodies of the given rows for download, skipping rows that are already
+     * cached or queued. Does nothing once the byte budget is spent.
+     */
+    public static synchronized void prefetch(Context context, List <NewsFeed> rows) {
+        final Context appContext = context.getApplicationContext();
+        int queued = 0;
+        for (NewsFeed row : rows) {
+            if (queued >= MAX_ROWS_PER_PASS || sBytesFetched >= BYTE_BUDGET) {
+                return;
+            }
+            String id = row.getId();
+            if (sInFlight.containsKey( id ) || ArticleCache.contains( id )) {
+                continue;
+            }
+            Download task = new Download( appContext, id, true );
+            sInFlight.put( id, task );
+            queued++;
+            EXECUTOR.execute( task );
+        }
+    }
+
+    /**
+     * Download the body for the given article right away, for an open that missed the
+     * cache. A prefetch for it that is already running is joined instead of sending a second
+     * request; one that is still queued behind other rows is cancelled and replaced by a
+     * foreground download, so the user is not held to the prefetch's limits. Must be called
+     * on a background thread. Returns null if the body could not be loaded.
+     */
+    public static String fetchNow(Context context, String id) {
+        Context appContext = context.getApplicationContext();
+        Download task;
+        boolean joined;
+        synchronized (ArticlePrefetcher.class) {
+            task = sInFlight.get( id );
+            joined = task != null && task.mStarted;
+            if (!joined) {
+                if (task != null) {
+                    task.cancel( false );
+                }
+                task = new Download( appContext, id, false );
+                sInFlight.put( id, task );
+            }
+        }
+
+        if (!joined) {
+            task.run();
+        }
+        String body;
+        try {
+            body = task.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e( LOG_TAG, "Problem downloading the article body.", e );
+            body = null;
+        }
+
+        // A joined prefetch gives up without a request once the byte budget is spent; the
+        // user still wants this one. Any other failure has already cost a request.
+        if (body == null && joined && task.mCall.mSkippedForBudget) {
+            body = download( appContext, id, false );
+        }
+        return body;
+    }
+
+    /**
+     * Record that an article was opened, whether its body was prefetched, and how long it
+     * took from the tap until the article was shown.
+     */
+    public static synchronized void recordOpen(boolean prefetched, long latencyMillis) {
+        sOpens++;
+        if (prefetched) {
+            sPrefetchHits++;
+            sHitLatencyMillis += latencyMillis;
+        } else {
+            sMissLatencyMillis += latencyMillis;
+        }
+        int misses = sOpens - sPrefetchHits;
+        Log.i( LOG_TAG, "Opened article in " + latencyMillis + "ms ("
+                + (prefetched ? "prefetched" : "not prefetched") + "). Hit rate "
+                + sPrefetchHits + "/" + sOpens
+                + ", avg hit " + (sPrefetchHits == 0 ? 0 : sHitLatencyMillis / sPrefetchHits) + "ms"
+                + ", avg miss " + (misses == 0 ? 0 : sMissLatencyMillis / misses) + "ms"
+                + ", prefetched " + sBytesFetched / 1024 + "KB of " + BYTE_BUDGET / 1024 + "KB." );
+    }
+
+    /**
+     * A queued or running download, which removes itself from {@link #sInFlight} when done.
+     */
+    private static final class Download extends FutureTask <String> {
+
+        private final String mId;
+        private final DownloadCall mCall;
+
+        /**
+         * Whether the download has started, so it can only be joined, not cancelled.
+         * Guarded by the ArticlePrefetcher class lock.
+         */
+        private boolean mStarted;
+
+        Download(Context appContext, String id, boolean prefetch) {
+            this( id, new DownloadCall( appContext, id, prefetch ) );
+            // A foreground download is run right away by the thread that created it.
+            mStarted = !prefetch;
+        }
+
+        private Download(String id, DownloadCall call) {
+            super( call );
+            mId = id;
+            mCall = call;
+        }
+
+        @Override
+        public void run() {
+            synchronized (ArticlePrefetcher.class) {
+                if (isCancelled()) {
+                    return;
+                }
+                mStarted = true;
+            }
+            super.run();
+        }
+
+        @Override
+        protected void done() {
+            synchronized (ArticlePrefetcher.class) {
+                if (sInFlight.get( mId ) == this) {
+                    sInFlight.remove( mId );
+                }
+            }
+        }
+    }
+
+    /**
+     * The work of a {@link Download}, which notes whether it was skipped for the byte budget.
+     */
+    private static final class DownloadCall implements Callable <String> {
+
+        private final Context mAppContext;
+        private final String mId;
+        private final boolean mPrefetch;
+        private volatile boolean mSkippedForBudget;
+
+        DownloadCall(Context appContext, String id, boolean prefetch) {
+            mAppContext = appContext;
+            mId = id;
+            mPrefetch = prefetch;
+        }
+
+        @Override
+        public String call() {
+            if (mPrefetch) {
+                synchronized (ArticlePrefetcher.class) {
+                    // Rows queued before the budget ran out are dropped here.
+                    if (sBytesFetched >= BYTE_BUDGET) {
+                        mSkippedForBudget = true;
+                        return null;
+                    }
+                }
+            }
+            return download( mAppContext, mId, mPrefetch );
+        }
+    }
+
+    private static String download(Context appContext, String id, boolean prefetch) {
+        String json = RequestGovernor.get( appContext )
+                .fetchUncached( QueryUtils.buildArticleUrl( appContext, id ), prefetch );
+        if (json == null) {
+            return null;
+        }
+        if (prefetch) {
+            synchronized (ArticlePrefetcher.class) {
+                // The response is nearly all ASCII, so its length is close to the bytes downloaded.
+                sBytesFetched += json.length();
+            }
+        }
+        String body = QueryUtils.extractArticleBody( json );
+        if (body != null) {
+            ArticleCache.put( id, body );
+        }
+        return body;
+    }
+}
@@ -1,20 +1,16 @@
 package com.example.android.newsfeed;
 
 
-import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
-import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
+import android.os.SystemClock;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ListView;
 import android.app.LoaderManager;
@@ -29,13 +25,6 @@ import android.widget.TextView;
 public class MainActivity extends AppCompatActivity implements LoaderCallbacks <List <NewsFeed>> {
 
 
-    /**
-     * URL for news data from the USGS dataset
-     */
-    private static final String GUARDIAN_URL =
-            "https://content.guardianapis.com/search";
-
-
     /**
      * add log tag
      */
@@ -63,7 +52,19 @@ public class MainActivity extends AppCompatActivity implements LoaderCallbacks <
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate( savedInstanceState );
+
+        // Make sure the feed request is running before the view hierarchy is inflated.
+        // Normally NewsFeedApplication has already started it; this covers the case where
+        // the process was kept alive and the previous prefetch was already consumed.
+        // On a configuration change the loader keeps its data, so there is nothing to fetch.
+        if (savedInstanceState == null) {
+            NewsFeedPrefetcher.start( this );
+        }
+
+        StartupTrace.beginSection( "MainActivity.setContentView" );
         setContentView( R.layout.activity_main );
+        StartupTrace.endSection();
+        StartupTrace.mark( "content view inflated" );
 
 
         // Find a reference to the {@link ListView} in the layout
@@ -80,8 +81,8 @@ public class MainActivity extends AppCompatActivity implements LoaderCallbacks <
         // so the list can be populated in the user interface
         newsfeedListView.setAdapter( mAdapter );
 
-        // Set an item click listener on the ListView, which sends an intent to a web browser
-        // to open a website with more information about the selected news.
+        // Set an item click listener on the ListView, which opens the selected news in the
+        // in-app reader. Its body has usually been prefetched while the row was visible.
         newsfeedListView.setOnItemClickListener( new AdapterView.OnItemClickListener() {
 
 
@@ -90,83 +91,73 @@ public class MainActivity extends AppCompatActivity implements LoaderCallbacks <
                 // Find the current news that was clicked on
                 NewsFeed currentNewsFeed = mAdapter.getItem( position );
 
-                // Convert the String URL into a URI object (to pass into the Intent constructor)
-                Uri newsfeedUri = Uri.parse( currentNewsFeed.getUrl() );
-
-                // Create a new intent to view the news URI
-                Intent websiteIntent = new Intent( Intent.ACTION_VIEW, newsfeedUri );
-                startActivity( websiteIntent );
+                // Create a new intent to read the news in the app
+                Intent readerIntent = new Intent( MainActivity.this, ReaderActivity.class );
+                readerIntent.putExtra( ReaderActivity.EXTRA_ID, currentNewsFeed.getId() );
+                readerIntent.putExtra( ReaderActivity.EXTRA_TITLE, currentNewsFeed.getWebTitle() );
+                readerIntent.putExtra( ReaderActivity.EXTRA_URL, currentNewsFeed.getUrl() );
+                readerIntent.putExtra( ReaderActivity.EXTRA_CLICK_UPTIME, SystemClock.uptimeMillis() );
+                startActivity( readerIntent );
             }
         } );
 
-        // Get a reference to the ConnectivityManager to check state of network connectivity
-        ConnectivityManager connMgr = (ConnectivityManager)
-                getSystemService( Context.CONNECTIVITY_SERVICE );
+        // Sample frame times while the list is scrolling, so scroll jank shows up in the
+        // MainThreadMonitor report. Nothing is sampled while the list is idle.
+        newsfeedListView.setOnScrollListener( new AbsListView.OnScrollListener() {
 
-        // Get details on the currently active default data network
-        NetworkInfo networkInfo = connMgr.getActiveNetworkInfo();
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+                if (scrollState == SCROLL_STATE_IDLE) {
+                    MainThreadMonitor.stopFrameTracking();
+                    prefetchVisibleArticles( view );
+                } else {
+                    MainThreadMonitor.startFrameTracking();
+                }
+            }
 
-        // this is to fetch data - if there is network
-        if (networkInfo != null && networkInfo.isConnected()) {
-            // Get a reference to the LoaderManager, in order to interact with loaders.
-            LoaderManager loaderManager = getLoaderManager();
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+            }
+        } );
 
-            // Initialize the loader. Pass in the int ID constant defined above and pass in null for
-            // the bundle. Pass in this activity for the LoaderCallbacks parameter
-            loaderManager.initLoader( NEWSFEED_LOADER_ID, null, this );
-        } else {
-            // Otherwise, display error
-            // First, hide loading indicator so error message will be visible
-            View loadingIndicator = findViewById( R.id.loading_indicator );
-            loadingIndicator.setVisibility( View.GONE );
+        // Get a reference to the LoaderManager, in order to interact with loaders.
+        // The loader also runs without a network, in which case it shows the cached feed.
+        LoaderManager loaderManager = getLoaderManager();
 
-            // Update empty state with no connection error message
-            mEmptyStateTextView.setText( R.string.no_internet_connection );
-        }
+        // Initialize the loader. Pass in the int ID constant defined above and pass in null for
+        // the bundle. Pass in this activity for the LoaderCallbacks parameter
+        loaderManager.initLoader( NEWSFEED_LOADER_ID, null, this );
     }
 
 
     @Override
     public Loader <List <NewsFeed>> onCreateLoader(int i, Bundle bundle) {
-        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences( this );
-
-        // getString retrieves a String value from the preferences. The second parameter is the default value for this preference.
-        String term = sharedPrefs.getString(
-                getString( R.string.settings_term_key ),
-                getString( R.string.settings_term_default ) );
-
-        String orderBy = sharedPrefs.getString(
-                getString( R.string.settings_order_by_key ),
-                getString( R.string.settings_order_by_default )
-        );
-
-        Uri baseUri = Uri.parse( GUARDIAN_URL );
+        // The url is built the same way the startup prefetch builds it, so the loader can
+        // pick up the request that is already in flight instead of starting a second one.
+        String url = QueryUtils.buildQueryUrl( this );
 
-        // buildUpon prepares the baseUri that we just parsed so we can add query parameters to it
-        Uri.Builder uriBuilder = baseUri.buildUpon();
-        uriBuilder.appendQueryParameter( "api-key", getString( R.string.api_key_news ));
-        uriBuilder.appendQueryParameter( "q", term );
-        uriBuilder.appendQueryParameter( "page-size", getString( R.string.settings_min_size_key ) );
-        uriBuilder.appendQueryParameter( "show-tags", "contributor" );
-        uriBuilder.appendQueryParameter( "order-by", orderBy );
-
-
-        Log.i( LOG_TAG, uriBuilder.toString() );
+        Log.i( LOG_TAG, url );
         // Return the completed uri:
         //https://content.guardianapis.com/search?&show-tags=contributor&show-fields=thumbnail&api-key=03801489-c242-476c-ab0c-d841def5d3e2&show-tags=contributor
-        return new NewsFeedLoader( this, uriBuilder.toString() );
+        return new NewsFeedLoader( this, url );
     }
 
 
     @Override
     public void onLoadFinished(Loader <List <NewsFeed>> loader, List <NewsFeed> data) {
+        StartupTrace.mark( "feed delivered to activity" );
         mAdapter.setNewsFeeds( data );
         // Hide loading indicator because the data has been loaded
         View loadingIndicator = findViewById( R.id.loading_indicator );
         loadingIndicator.setVisibility( View.GONE );
 
-        // Set empty state text to display "No news available."
-        mEmptyStateTextView.setText( R.string.no_newsfeeds );
+        // Set empty state text to display "No news available.", or the no connection
+        // error message if there was no network and nothing cached to show.
+        if (QueryUtils.isConnected( this )) {
+            mEmptyStateTextView.setText( R.string.no_newsfeeds );
+        } else {
+            mEmptyStateTextView.setText( R.string.no_internet_connection );
+        }
 
 
         // Clear the adapter of previous news feed data
@@ -176,7 +167,28 @@ public class MainActivity extends AppCompatActivity implements LoaderCallbacks <
         // data set. This will trigger the ListView to update.
         if (data != null && !data.isEmpty()) {
             mAdapter.addAll( data );
+
+            // Prefetch the article bodies of the first rows once the list has laid them out.
+            final ListView newsfeedListView = findViewById( R.id.list );
+            newsfeedListView.post( new Runnable() {
+                @Override
+                public void run() {
+                    prefetchVisibleArticles( newsfeedListView );
+                }
+            } );
+        }
+    }
+
+    /**
+     * Hand the rows currently on screen, top first, to the {@link ArticlePrefetcher}.
+     */
+    private void prefetchVisibleArticles(AbsListView listView) {
+        List <NewsFeed> visibleRows = new ArrayList <>();
+        int last = Math.min( listView.getLastVisiblePosition(), mAdapter.getCount() - 1 );
+        for (int position = listView.getFirstVisiblePosition(); position <= last; position++) {
+            visibleRows.add( mAdapter.getItem( position ) );
         }
+        ArticlePrefetcher.prefetch( this, visibleRows );
     }
 
     @Override
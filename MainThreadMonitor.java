@@ -0,0 +1,531 @@
+package com.example.android.newsfeed;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.StrictMode;
+import android.os.SystemClock;
+import android.os.strictmode.Violation;
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Watches the UI thread for stalls, scroll jank and disk or network access, and keeps a
+ * compact report of what it saw.
+ * <p>
+ * The cost is small enough to leave on in production: the stall watchdog posts one message
+ * to the main thread per second while an activity is visible, frame times are only sampled
+ * while the list is scrolling, and disk/network checks are a single looper comparison at the
+ * places that do I/O. On API 28 and up, {@link StrictMode} violations for disk and network
+ * access on the main thread go into the report too; debug builds also log them.
+ * <p>
+ * The report is written to {@value #REPORT_FILE_NAME} in the app's external files dir
+ * whenever the app goes to the background, and as soon as a stall is detected so that it
+ * survives an ANR kill. The report of the previous process is kept as
+ * {@value #PREVIOUS_REPORT_FILE_NAME}. That dir needs no permission and no debuggable
+ * build, so the report can be pulled from production builds with
+ * {@code adb pull /sdcard/Android/data/com.example.android.newsfeed/files/main_thread_report.txt}.
+ * If external storage is not available, it falls back to the internal files dir.
+ */
+public final class MainThreadMonitor {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = MainThreadMonitor.class.getSimpleName();
+
+    /**
+     * Name of the report file in the app's external files dir
+     */
+    public static final String REPORT_FILE_NAME = "main_thread_report.txt";
+
+    /**
+     * Name the previous process's report is moved to when monitoring starts
+     */
+    public static final String PREVIOUS_REPORT_FILE_NAME = "main_thread_report.previous.txt";
+
+    /**
+     * The main thread counts as stalled when a posted message has not run after this long
+     */
+    private static final long STALL_THRESHOLD_MILLIS = 500;
+
+    /**
+     * How often the watchdog checks the main thread
+     */
+    private static final long CHECK_INTERVAL_MILLIS = 1000;
+
+    /**
+     * How often the watchdog looks again while a stall is still going on
+     */
+    private static final long STALL_POLL_MILLIS = 50;
+
+    /**
+     * Upper bounds (in milliseconds) of the frame time histogram buckets. Frames slower
+     * than the last bound go into an extra overflow bucket.
+     */
+    private static final long[] FRAME_BUCKETS_MILLIS = {17, 34, 50, 100, 700};
+
+    /**
+     * Frames slower than this are counted as jank
+     */
+    private static final long JANK_FRAME_MILLIS = 17;
+
+    /**
+     * Number of stack frames used to tell stalls and violations apart, and printed per entry
+     */
+    private static final int STACK_DEPTH = 12;
+
+    /**
+     * Most distinct stall and violation stacks kept, so the report stays small
+     */
+    private static final int MAX_DISTINCT_STACKS = 10;
+
+    private static final Object sLock = new Object();
+
+    private static Application sApplication;
+    private static Handler sMainHandler;
+    private static final ExecutorService REPORT_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    /**
+     * Number of started activities; the watchdog sleeps while this is 0
+     */
+    private static int sStartedActivities;
+
+    /**
+     * Frame time histogram, with one overflow bucket at the end
+     */
+    private static final long[] sFrameBuckets = new long[FRAME_BUCKETS_MILLIS.length + 1];
+    private static long sFramesSampled;
+    private static long sJankFrames;
+    private static long sWorstFrameMillis;
+
+    private static long sStallCount;
+    private static long sWorstStallMillis;
+    private static final Map <String, StackCount> sStalls = new LinkedHashMap <>();
+
+    private static final Map <String, StackCount> sViolations = new LinkedHashMap <>();
+
+    private static final FrameTracker sFrameTracker = new FrameTracker();
+
+    private MainThreadMonitor() {
+    }
+
+    /**
+     * Start monitoring. Called once from {@link NewsFeedApplication}.
+     */
+    public static void install(Application application) {
+        sApplication = application;
+        sMainHandler = new Handler( Looper.getMainLooper() );
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P || BuildConfig.DEBUG) {
+            StrictMode.ThreadPolicy.Builder policy = new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads()
+                    .detectDiskWrites()
+                    .detectNetwork();
+            if (BuildConfig.DEBUG) {
+                policy.penaltyLog();
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                // Violations are delivered on the report thread, off the main thread.
+                policy.penaltyListener( REPORT_EXECUTOR, new StrictMode.OnThreadViolationListener() {
+                    @Override
+                    public void onThreadViolation(Violation violation) {
+                        synchronized (sLock) {
+                            recordStack( sViolations, "StrictMode " + violation.getClass().getSimpleName(),
+                                    violation.getStackTrace(), 0 );
+                        }
+                    }
+                } );
+            }
+            StrictMode.setThreadPolicy( policy.build() );
+        }
+
+        REPORT_EXECUTOR.execute( new Runnable() {
+            @Override
+            public void run() {
+                File dir = reportDir();
+                File report = new File( dir, REPORT_FILE_NAME );
+                if (report.exists() && !report.renameTo( new File( dir, PREVIOUS_REPORT_FILE_NAME ) )) {
+                    Log.e( LOG_TAG, "Could not keep the previous main thread report." );
+                }
+            }
+        } );
+
+        application.registerActivityLifecycleCallbacks( new LifecycleWatcher() );
+
+        Thread watchdog = new Thread( new Watchdog(), "MainThreadWatchdog" );
+        watchdog.setDaemon( true );
+        watchdog.setPriority( Thread.MIN_PRIORITY );
+        watchdog.start();
+    }
+
+    /**
+     * Record a violation if the caller is on the main thread. Call this at the start of any
+     * disk or network access, with a short description such as "network" or "disk read".
+     */
+    public static void checkNotMainThread(String kind) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            return;
+        }
+        StackTraceElement[] stack = Thread.currentThread().getStackTrace();
+        synchronized (sLock) {
+            recordStack( sViolations, kind, stack, 0 );
+        }
+        Log.w( LOG_TAG, kind + " on the main thread", new Throwable( kind ) );
+    }
+
+    /**
+     * Start sampling frame times. Call when the list starts scrolling.
+     */
+    public static void startFrameTracking() {
+        sFrameTracker.start();
+    }
+
+    /**
+     * Stop sampling frame times. Call when the list stops scrolling.
+     */
+    public static void stopFrameTracking() {
+        sFrameTracker.stop();
+    }
+
+    /**
+     * Returns the current report as text.
+     */
+    public static String getReport() {
+        StringBuilder report = new StringBuilder();
+        synchronized (sLock) {
+            report.append( "Frames sampled while scrolling: " ).append( sFramesSampled ).append( '\n' );
+            report.append( "Janky frames (>" ).append( JANK_FRAME_MILLIS ).append( "ms): " )
+                    .append( sJankFrames ).append( '\n' );
+            report.append( "Worst frame: " ).append( sWorstFrameMillis ).append( "ms\n" );
+            report.append( "Frame times:" );
+            for (int i = 0; i < sFrameBuckets.length; i++) {
+                report.append( i < FRAME_BUCKETS_MILLIS.length
+                        ? " <" + FRAME_BUCKETS_MILLIS[i] + "ms=" : " >=" + FRAME_BUCKETS_MILLIS[i - 1] + "ms=" )
+                        .append( sFrameBuckets[i] );
+            }
+            report.append( "\n\n" );
+
+            report.append( "Main thread stalls (>" ).append( STALL_THRESHOLD_MILLIS ).append( "ms): " )
+                    .append( sStallCount ).append( ", worst " ).append( sWorstStallMillis ).append( "ms\n" );
+            appendStacks( report, sStalls );
+            report.append( '\n' );
+
+            report.append( "Disk/network access on the main thread:\n" );
+            appendStacks( report, sViolations );
+        }
+        return report.toString();
+    }
+
+    /**
+     * Write the report to the external files dir on a background thread.
+     */
+    private static void writeReport() {
+        final String report = getReport();
+        REPORT_EXECUTOR.execute( new Runnable() {
+            @Override
+            public void run() {
+                writeReportFile( report );
+            }
+        } );
+    }
+
+    /**
+     * Returns the dir the report is written to.
+     */
+    private static File reportDir() {
+        File dir = sApplication.getExternalFilesDir( null );
+        if (dir == null) {
+            dir = sApplication.getFilesDir();
+        }
+        return dir;
+    }
+
+    /**
+     * Write the report on the calling thread, which must not be the main thread. Synchronized
+     * because both the report thread and the watchdog write it.
+     */
+    private static synchronized void writeReportFile(String report) {
+        File file = new File( reportDir(), REPORT_FILE_NAME );
+        OutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream( file );
+            outputStream.write( report.getBytes( Charset.forName( "UTF-8" ) ) );
+        } catch (IOException e) {
+            Log.e( LOG_TAG, "Problem writing the main thread report.", e );
+        } finally {
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                    Log.e( LOG_TAG, "Problem closing the main thread report.", e );
+                }
+            }
+        }
+    }
+
+    private static void recordFrame(long frameMillis) {
+        synchronized (sLock) {
+            sFramesSampled++;
+            if (frameMillis > JANK_FRAME_MILLIS) {
+                sJankFrames++;
+            }
+            sWorstFrameMillis = Math.max( sWorstFrameMillis, frameMillis );
+            int bucket = 0;
+            while (bucket < FRAME_BUCKETS_MILLIS.length && frameMillis >= FRAME_BUCKETS_MILLIS[bucket]) {
+                bucket++;
+            }
+            sFrameBuckets[bucket]++;
+        }
+    }
+
+    /**
+     * Record a stall that is still going on, with the time it has lasted so far. Returns
+     * the entry to pass to {@link #finishStall}, or null if the stack was not kept.
+     */
+    private static StackCount recordStall(long stallMillis, StackTraceElement[] stack) {
+        synchronized (sLock) {
+            sStallCount++;
+            sWorstStallMillis = Math.max( sWorstStallMillis, stallMillis );
+            return recordStack( sStalls, "stall", stack, stallMillis );
+        }
+    }
+
+    /**
+     * Update a stall recorded by {@link #recordStall} with its final duration.
+     */
+    private static void finishStall(StackCount stall, long recordedMillis, long stallMillis) {
+        synchronized (sLock) {
+            sWorstStallMillis = Math.max( sWorstStallMillis, stallMillis );
+            if (stall != null) {
+                stall.mTotalMillis += stallMillis - recordedMillis;
+            }
+        }
+        Log.w( LOG_TAG, "Main thread stalled for " + stallMillis + "ms" );
+    }
+
+    /**
+     * Count the stack under its top frames and return its entry. New stacks are dropped,
+     * and null returned, once {@link #MAX_DISTINCT_STACKS} are kept. Must hold {@link #sLock}.
+     */
+    private static StackCount recordStack(Map <String, StackCount> stacks, String kind,
+                                    StackTraceElement[] stack, long durationMillis) {
+        StringBuilder key = new StringBuilder( kind );
+        int start = firstInterestingFrame( stack );
+        for (int i = start; i < stack.length && i < start + STACK_DEPTH; i++) {
+            key.append( "\n    at " ).append( stack[i] );
+        }
+        String signature = key.toString();
+
+        StackCount count = stacks.get( signature );
+        if (count == null) {
+            if (stacks.size() >= MAX_DISTINCT_STACKS) {
+                return null;
+            }
+            count = new StackCount();
+            stacks.put( signature, count );
+        }
+        count.mCount++;
+        count.mTotalMillis += durationMillis;
+        return count;
+    }
+
+    /**
+     * Skip the frames that belong to stack capturing itself.
+     */
+    private static int firstInterestingFrame(StackTraceElement[] stack) {
+        for (int i = 0; i < stack.length; i++) {
+            String className = stack[i].getClassName();
+            if (!className.equals( Thread.class.getName() )
+                    && !className.equals( MainThreadMonitor.class.getName() )
+                    && !className.equals( "dalvik.system.VMStack" )) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    private static void appendStacks(StringBuilder report, Map <String, StackCount> stacks) {
+        if (stacks.isEmpty()) {
+            report.append( "  none\n" );
+            return;
+        }
+        for (Map.Entry <String, StackCount> entry : stacks.entrySet()) {
+            StackCount count = entry.getValue();
+            report.append( "  x" ).append( count.mCount );
+            if (count.mTotalMillis > 0) {
+                report.append( ", " ).append( count.mTotalMillis ).append( "ms total" );
+            }
+            report.append( ": " ).append( entry.getKey() ).append( '\n' );
+        }
+    }
+
+    /**
+     * How often a stack was seen and how long it blocked in total
+     */
+    private static final class StackCount {
+        long mCount;
+        long mTotalMillis;
+    }
+
+    /**
+     * Measures the time between consecutive frames while it is running.
+     */
+    private static final class FrameTracker implements Choreographer.FrameCallback {
+
+        private boolean mRunning;
+        private long mLastFrameNanos;
+
+        void start() {
+            if (mRunning) {
+                return;
+            }
+            mRunning = true;
+            mLastFrameNanos = 0;
+            Choreographer.getInstance().postFrameCallback( this );
+        }
+
+        void stop() {
+            mRunning = false;
+            Choreographer.getInstance().removeFrameCallback( this );
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!mRunning) {
+                return;
+            }
+            if (mLastFrameNanos != 0) {
+                recordFrame( (frameTimeNanos - mLastFrameNanos) / 1000000 );
+            }
+            mLastFrameNanos = frameTimeNanos;
+            Choreographer.getInstance().postFrameCallback( this );
+        }
+    }
+
+    /**
+     * Posts a message to the main thread and captures its stack if the message does not run
+     * within {@link #STALL_THRESHOLD_MILLIS}.
+     */
+    private static final class Watchdog implements Runnable {
+
+        /**
+         * Uptime at which the main thread last ran the tick message
+         */
+        private volatile long mTickMillis;
+
+        private final Runnable mTick = new Runnable() {
+            @Override
+            public void run() {
+                mTickMillis = SystemClock.uptimeMillis();
+            }
+        };
+
+        @Override
+        public void run() {
+            Thread mainThread = Looper.getMainLooper().getThread();
+            try {
+                while (true) {
+                    synchronized (sLock) {
+                        while (sStartedActivities == 0) {
+                            sLock.wait();
+                        }
+                    }
+
+                    long postedMillis = SystemClock.uptimeMillis();
+                    mTickMillis = 0;
+                    sMainHandler.post( mTick );
+                    Thread.sleep( STALL_THRESHOLD_MILLIS );
+
+                    if (mTickMillis == 0) {
+                        // A paused debugger is not a stall, but the tick must still run before
+                        // the next one is posted, or it could hide a real stall later on.
+                        boolean debugging = Debug.isDebuggerConnected();
+                        StackCount stall = null;
+                        long recordedMillis = 0;
+                        if (!debugging) {
+                            // Still blocked: the stack now shows what the main thread is stuck on.
+                            // Save it right away, since a stall that ends in an ANR is never over.
+                            StackTraceElement[] stack = mainThread.getStackTrace();
+                            recordedMillis = SystemClock.uptimeMillis() - postedMillis;
+                            stall = recordStall( recordedMillis, stack );
+                            writeReportFile( getReport() );
+                        }
+                        while (mTickMillis == 0) {
+                            Thread.sleep( STALL_POLL_MILLIS );
+                        }
+                        if (!debugging) {
+                            finishStall( stall, recordedMillis, mTickMillis - postedMillis );
+                        }
+                    }
+
+                    Thread.sleep( CHECK_INTERVAL_MILLIS - STALL_THRESHOLD_MILLIS );
+                }
+            } catch (InterruptedException e) {
+                Log.i( LOG_TAG, "Main thread watchdog stopped." );
+            }
+        }
+    }
+
+    /**
+     * Keeps the watchdog running only while an activity is visible, and writes the report
+     * when the app goes to the background.
+     */
+    private static final class LifecycleWatcher implements Application.ActivityLifecycleCallbacks {
+
+        @Override
+        public void onActivityStarted(Activity activity) {
+            synchronized (sLock) {
+                sStartedActivities++;
+                sLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+            boolean inBackground;
+            synchronized (sLock) {
+                sStartedActivities--;
+                inBackground = sStartedActivities == 0;
+            }
+            if (inBackground) {
+                stopFrameTracking();
+                writeReport();
+            }
+        }
+
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+        }
+
+        @Override
+        public void onActivityResumed(Activity activity) {
+        }
+
+        @Override
+        public void onActivityPaused(Activity activity) {
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+        }
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {
+        }
+    }
+}
@@ -5,6 +5,10 @@ package com.example.android.newsfeed;
  */
 public class NewsFeed {
 
+    /**
+     * Guardian content id of the newsfeed
+     */
+    private String mId;
     /**
      * Name of the newsfeed
      */
@@ -39,6 +43,7 @@ public class NewsFeed {
     /**
      * Constructs a new {@link NewsFeed } object.
      *
+     * @param id                 is the Guardian content id of the news
      * @param sectionId          is the type of the news
      * @param sectionName        is the Sectionname of the news
      * @param webTitle           is the Sectiontitle of the news
@@ -47,7 +52,8 @@ public class NewsFeed {
      * @param authorName         is the author's name
      * @param url                is the website URL to find more details about the news
      */
-    public NewsFeed(String sectionId, String sectionName, String webTitle, String webPublicationDate, String authorName, String url) {
+    public NewsFeed(String id, String sectionId, String sectionName, String webTitle, String webPublicationDate, String authorName, String url) {
+        mId = id;
         mSectionId = sectionId;
         mSectionName = sectionName;
         mWebTitle = webTitle;
@@ -57,6 +63,14 @@ public class NewsFeed {
     }
 
 
+    /**
+     * Returns the Guardian content id of the NEWS.
+     */
+    public String getId() {
+        return mId;
+    }
+
+
     /**
      * Returns the Type of the NEWS.
      */
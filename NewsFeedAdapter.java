@@ -88,6 +88,8 @@ public class NewsFeedAdapter extends ArrayAdapter <NewsFeed> {
         TextView authorView = listItemView.findViewById( R.id.authorName );
         authorView.setText( authorName );
 
+        StartupTrace.firstRowBound();
+
         // Return the list item view that is now showing the appropriate data
         return listItemView;
     }
@@ -0,0 +1,18 @@
+package com.example.android.newsfeed;
+
+import android.app.Application;
+
+/**
+ * Application entry point. Kicks off the news feed request before any activity is created,
+ * so the first screen does not have to wait for the network after inflating its layout.
+ */
+public class NewsFeedApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        StartupTrace.processStarted();
+        MainThreadMonitor.install( this );
+        NewsFeedPrefetcher.start( this );
+    }
+}
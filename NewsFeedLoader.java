@@ -45,8 +45,21 @@ public class NewsFeedLoader extends AsyncTaskLoader <List <NewsFeed>> {
             return null;
         }
 
+        // If the request was already started at process startup, wait for that one
+        // instead of doing the same network round trip again.
+        NewsFeedPrefetcher.Prefetch prefetch = NewsFeedPrefetcher.take( mUrl );
+        if (prefetch != null) {
+            return prefetch.getNewsFeeds();
+        }
+
+        // Without a network, show the last feed that was cached instead of failing.
+        if (!QueryUtils.isConnected( getContext() )) {
+            return RequestGovernor.get( getContext() ).readCachedNewsFeedData( mUrl );
+        }
+
         // Perform the network request, parse the response, and extract a list of news.
-        List <NewsFeed> newsfeeds = QueryUtils.fetchNewsFeedData( mUrl );
+        // The governor keeps us within the api key's quota and falls back to cached results.
+        List <NewsFeed> newsfeeds = RequestGovernor.get( getContext() ).fetchNewsFeedData( mUrl );
         return newsfeeds;
     }
 }
\ No newline at end of file
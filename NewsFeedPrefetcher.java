@@ -0,0 +1,148 @@
+package com.example.android.newsfeed;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Starts the news feed request as early as possible in the process lifecycle, so the
+ * network round trip overlaps with inflating {@link MainActivity}'s layout.
+ * <p>
+ * The result is handed over to {@link NewsFeedLoader}, which waits on the request that is
+ * already in flight instead of starting a new one. When there is no network, the feed is
+ * read from {@link RequestGovernor}'s disk cache instead. A prefetch that was started more than
+ * {@link #MAX_AGE_MILLIS} ago is thrown away, so a process restored into another activity
+ * does not hand an old feed to {@link MainActivity} later on.
+ */
+public final class NewsFeedPrefetcher {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = NewsFeedPrefetcher.class.getSimpleName();
+
+    /**
+     * How long after it was started a prefetch may still be handed over
+     */
+    private static final long MAX_AGE_MILLIS = 30000;
+
+    /**
+     * Single background thread that runs the prefetch request
+     */
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor();
+
+    /**
+     * Pending result of the request in flight, or null if there is none
+     */
+    private static Future <Prefetch> sPending;
+
+    /**
+     * Uptime at which the request in flight was started
+     */
+    private static long sStartedMillis;
+
+    private NewsFeedPrefetcher() {
+    }
+
+    /**
+     * Start fetching the news feed for the current preferences, unless a recent request is
+     * already in flight. Reading the preferences and checking the network both happen on
+     * the background thread, so this is safe to call at process start.
+     */
+    public static synchronized void start(Context context) {
+        final Context appContext = context.getApplicationContext();
+
+        if (sPending != null && !isStale()) {
+            return;
+        }
+
+        sStartedMillis = SystemClock.elapsedRealtime();
+        sPending = EXECUTOR.submit( new Callable <Prefetch>() {
+            @Override
+            public Prefetch call() {
+                StartupTrace.beginSection( "NewsFeedPrefetcher.fetch" );
+                try {
+                    String url = QueryUtils.buildQueryUrl( appContext );
+                    RequestGovernor governor = RequestGovernor.get( appContext );
+                    // Without a network, the last feed from the disk cache is still worth showing.
+                    if (!QueryUtils.isConnected( appContext )) {
+                        return new Prefetch( url, governor.readCachedNewsFeedData( url ) );
+                    }
+                    return new Prefetch( url, governor.fetchNewsFeedData( url ) );
+                } finally {
+                    StartupTrace.endSection();
+                    StartupTrace.mark( "feed fetched" );
+                }
+            }
+        } );
+    }
+
+    /**
+     * Hand over the prefetched feed for the given url, waiting for it if it is still in
+     * flight. Returns null if nothing recent was prefetched for that url, in which case the
+     * caller should do the request itself. Must be called on a background thread.
+     */
+    public static Prefetch take(String url) {
+        Future <Prefetch> pending;
+        synchronized (NewsFeedPrefetcher.class) {
+            pending = isStale() ? null : sPending;
+            sPending = null;
+        }
+        if (pending == null) {
+            return null;
+        }
+
+        try {
+            Prefetch prefetch = pending.get();
+            if (prefetch == null || !url.equals( prefetch.getUrl() )) {
+                return null;
+            }
+            return prefetch;
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e( LOG_TAG, "Problem waiting for the prefetched news feed.", e );
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if the request in flight was started too long ago to hand over.
+     */
+    private static boolean isStale() {
+        return SystemClock.elapsedRealtime() - sStartedMillis > MAX_AGE_MILLIS;
+    }
+
+    /**
+     * A prefetched feed together with the url it was fetched from.
+     */
+    public static final class Prefetch {
+
+        private final String mUrl;
+        private final List <NewsFeed> mNewsFeeds;
+
+        Prefetch(String url, List <NewsFeed> newsFeeds) {
+            mUrl = url;
+            mNewsFeeds = newsFeeds;
+        }
+
+        /**
+         * Returns the url the feed was fetched from.
+         */
+        public String getUrl() {
+            return mUrl;
+        }
+
+        /**
+         * Returns the fetched feed, which may be null if the request failed.
+         */
+        public List <NewsFeed> getNewsFeeds() {
+            return mNewsFeeds;
+        }
+    }
+}
@@ -1,6 +1,12 @@
 package com.example.android.newsfeed;
 
 
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.Uri;
+import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -30,6 +36,18 @@ public final class QueryUtils {
      */
     private static final String LOG_TAG = QueryUtils.class.getSimpleName();
 
+    /**
+     * URL for news data from the Guardian dataset
+     */
+    private static final String GUARDIAN_URL =
+            "https://content.guardianapis.com/search";
+
+    /**
+     * Base URL for a single Guardian item, followed by its content id
+     */
+    private static final String GUARDIAN_CONTENT_URL =
+            "https://content.guardianapis.com/";
+
     /**
      * Create a private constructor because no one should ever create a {@link QueryUtils} object.
      * This class is only meant to hold static variables and methods,
@@ -40,27 +58,81 @@ public final class QueryUtils {
 
 
     /**
-     * Query the USGS dataset and return a list of {@link NewsFeed} objects.
+     * Build the Guardian search url from the user's preferences. This only needs a
+     * {@link Context}, so it can be called before any activity has been created.
      */
-    public static List <NewsFeed> fetchNewsFeedData(String requestUrl) {
+    public static String buildQueryUrl(Context context) {
+        // Reading the preferences can hit the disk on first use.
+        MainThreadMonitor.checkNotMainThread( "disk read" );
+
+        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences( context );
+
+        // getString retrieves a String value from the preferences. The second parameter is the default value for this preference.
+        String term = sharedPrefs.getString(
+                context.getString( R.string.settings_term_key ),
+                context.getString( R.string.settings_term_default ) );
+
+        String orderBy = sharedPrefs.getString(
+                context.getString( R.string.settings_order_by_key ),
+                context.getString( R.string.settings_order_by_default )
+        );
+
+        Uri baseUri = Uri.parse( GUARDIAN_URL );
+
+        // buildUpon prepares the baseUri that we just parsed so we can add query parameters to it
+        Uri.Builder uriBuilder = baseUri.buildUpon();
+        uriBuilder.appendQueryParameter( "api-key", context.getString( R.string.api_key_news ) );
+        uriBuilder.appendQueryParameter( "q", term );
+        uriBuilder.appendQueryParameter( "page-size", context.getString( R.string.settings_min_size_key ) );
+        uriBuilder.appendQueryParameter( "show-tags", "contributor" );
+        uriBuilder.appendQueryParameter( "order-by", orderBy );
+
+        return uriBuilder.toString();
+    }
+
+
+    /**
+     * Returns true if there is a connected default data network.
+     */
+    public static boolean isConnected(Context context) {
+        // Get a reference to the ConnectivityManager to check state of network connectivity
+        ConnectivityManager connMgr = (ConnectivityManager)
+                context.getSystemService( Context.CONNECTIVITY_SERVICE );
+
+        // Get details on the currently active default data network
+        NetworkInfo networkInfo = connMgr.getActiveNetworkInfo();
+        return networkInfo != null && networkInfo.isConnected();
+    }
+
+
+    /**
+     * Build the Guardian url for a single article, asking for its html body.
+     */
+    public static String buildArticleUrl(Context context, String id) {
+        Uri.Builder uriBuilder = Uri.parse( GUARDIAN_CONTENT_URL + id ).buildUpon();
+        uriBuilder.appendQueryParameter( "api-key", context.getString( R.string.api_key_news ) );
+        uriBuilder.appendQueryParameter( "show-fields", "body" );
+        return uriBuilder.toString();
+    }
+
+
+    /**
+     * Perform the HTTP request for the given url and return the raw {@link HttpResponse},
+     * including the response code and any Retry-After hint, without parsing the body.
+     * Only {@link RequestGovernor} should call this, so every request counts against the
+     * api key's rate limit and quota.
+     */
+    static HttpResponse fetchResponse(String requestUrl) {
 
         // Create URL object
         URL url = createUrl( requestUrl );
 
-        // Perform HTTP request to the URL and receive a JSON response back
-        String jsonResponse = null;
         try {
-            jsonResponse = makeHttpRequest( url );
+            return makeHttpRequest( url );
         } catch (IOException e) {
             Log.e( LOG_TAG, "Problem making the HTTP request.", e );
+            return new HttpResponse( HttpResponse.NO_RESPONSE, "", HttpResponse.NO_RETRY_AFTER );
         }
-
-
-        // Extract relevant fields from the JSON response and create a list of {@link news}s
-        List <NewsFeed> newsfeeds = extractResultsFromJson( jsonResponse );
-
-        // Return the list of {@link Newsfeed}s
-        return newsfeeds;
     }
 
     /**
@@ -77,16 +149,20 @@ public final class QueryUtils {
     }
 
     /**
-     * Make an HTTP request to the given URL and return a String as the response.
+     * Make an HTTP request to the given URL and return the response.
      */
-    private static String makeHttpRequest(URL url) throws IOException {
+    private static HttpResponse makeHttpRequest(URL url) throws IOException {
         String jsonResponse = "";
+        int responseCode = HttpResponse.NO_RESPONSE;
+        long retryAfterSeconds = HttpResponse.NO_RETRY_AFTER;
 
         // If the URL is null, then return early.
         if (url == null) {
-            return jsonResponse;
+            return new HttpResponse( responseCode, jsonResponse, retryAfterSeconds );
         }
 
+        MainThreadMonitor.checkNotMainThread( "network" );
+
         HttpURLConnection urlConnection = null;
         InputStream inputStream = null;
         try {
@@ -95,14 +171,16 @@ public final class QueryUtils {
             urlConnection.setConnectTimeout( 15000 /* milliseconds */ );
             urlConnection.setRequestMethod( "GET" );
             urlConnection.connect();
+            responseCode = urlConnection.getResponseCode();
 
             // If the request was successful (response code 200),
             // then read the input stream and parse the response.
-            if (urlConnection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+            if (responseCode == HttpURLConnection.HTTP_OK) {
                 inputStream = urlConnection.getInputStream();
                 jsonResponse = readFromStream( inputStream );
             } else {
-                Log.e( LOG_TAG, "Error response code: " + urlConnection.getResponseCode() );
+                Log.e( LOG_TAG, "Error response code: " + responseCode );
+                retryAfterSeconds = readRetryAfter( urlConnection );
             }
         } catch (IOException e) {
             Log.e( LOG_TAG, "Problem retrieving the news JSON results.", e );
@@ -114,7 +192,27 @@ public final class QueryUtils {
                 inputStream.close();
             }
         }
-        return jsonResponse;
+        return new HttpResponse( responseCode, jsonResponse, retryAfterSeconds );
+    }
+
+    /**
+     * Read the Retry-After header, which is either a number of seconds or an HTTP date.
+     * Returns {@link HttpResponse#NO_RETRY_AFTER} if the header is missing.
+     */
+    private static long readRetryAfter(HttpURLConnection urlConnection) {
+        String retryAfter = urlConnection.getHeaderField( "Retry-After" );
+        if (TextUtils.isEmpty( retryAfter )) {
+            return HttpResponse.NO_RETRY_AFTER;
+        }
+        try {
+            return Math.max( 0, Long.parseLong( retryAfter.trim() ) );
+        } catch (NumberFormatException e) {
+            long retryAt = urlConnection.getHeaderFieldDate( "Retry-After", 0 );
+            if (retryAt == 0) {
+                return HttpResponse.NO_RETRY_AFTER;
+            }
+            return Math.max( 0, (retryAt - System.currentTimeMillis()) / 1000 );
+        }
     }
 
     /**
@@ -141,7 +239,7 @@ public final class QueryUtils {
      * parsing a JSON response.
      * parsing the given JSON response.
      */
-    private static List <NewsFeed> extractResultsFromJson(String newsfeedJSON) {
+    static List <NewsFeed> extractResultsFromJson(String newsfeedJSON) {
         // If the JSON string is empty or null, then return early.
         if (TextUtils.isEmpty( newsfeedJSON )) {
             return null;
@@ -173,6 +271,9 @@ public final class QueryUtils {
                 JSONObject currentNewsFeed = newsfeedArray.getJSONObject( i );
 
 
+                // Extract the value for the key called "id", used to request the article body
+                String contentId = currentNewsFeed.getString( "id" );
+
                 // Extract the value for the key called "type"
                 String id = currentNewsFeed.getString( "sectionId" );
 
@@ -198,7 +299,7 @@ public final class QueryUtils {
 
                 //{@link news} object with the type, name, title, time,
                 // and url from the JSON response.
-                NewsFeed newsfeed = new NewsFeed( id, name, title, date, author, url );
+                NewsFeed newsfeed = new NewsFeed( contentId, id, name, title, date, author, url );
 
                 // Add the new {@link News Feed} to the list of news feeds.
                 newsfeeds.add( newsfeed );
@@ -214,4 +315,78 @@ public final class QueryUtils {
         // Return the list of news
         return newsfeeds;
     }
+
+
+    /**
+     * Return the html body from a single article JSON response, or null if it has none.
+     */
+    static String extractArticleBody(String articleJSON) {
+        if (TextUtils.isEmpty( articleJSON )) {
+            return null;
+        }
+        try {
+            JSONObject fields = new JSONObject( articleJSON )
+                    .getJSONObject( "response" )
+                    .getJSONObject( "content" )
+                    .getJSONObject( "fields" );
+            return fields.optString( "body", null );
+        } catch (JSONException e) {
+            Log.e( LOG_TAG, "Problem parsing the article JSON result", e );
+            return null;
+        }
+    }
+
+    /**
+     * The outcome of a single HTTP request: response code, body and Retry-After hint.
+     */
+    public static final class HttpResponse {
+
+        /**
+         * Response code used when no response was received at all
+         */
+        public static final int NO_RESPONSE = -1;
+
+        /**
+         * Retry-After value used when the server did not send one
+         */
+        public static final long NO_RETRY_AFTER = -1;
+
+        private final int mResponseCode;
+        private final String mBody;
+        private final long mRetryAfterSeconds;
+
+        HttpResponse(int responseCode, String body, long retryAfterSeconds) {
+            mResponseCode = responseCode;
+            mBody = body;
+            mRetryAfterSeconds = retryAfterSeconds;
+        }
+
+        /**
+         * Returns the HTTP response code, or {@link #NO_RESPONSE}.
+         */
+        public int getResponseCode() {
+            return mResponseCode;
+        }
+
+        /**
+         * Returns the response body, or an empty string if the request failed.
+         */
+        public String getBody() {
+            return mBody;
+        }
+
+        /**
+         * Returns the Retry-After delay in seconds, or {@link #NO_RETRY_AFTER}.
+         */
+        public long getRetryAfterSeconds() {
+            return mRetryAfterSeconds;
+        }
+
+        /**
+         * Returns true if the request succeeded and has a body.
+         */
+        public boolean isSuccessful() {
+            return mResponseCode == HttpURLConnection.HTTP_OK && !TextUtils.isEmpty( mBody );
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,176 @@
+package com.example.android.newsfeed;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.v7.app.AppCompatActivity;
+import android.text.TextUtils;
+import android.view.View;
+import android.webkit.WebView;
+import android.webkit.WebViewClient;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Shows a single article in the app. The body normally comes straight from the
+ * {@link ArticleCache}, filled by {@link ArticlePrefetcher}, so it opens without a network
+ * round trip, even offline. On a cache miss the body is downloaded, and if that fails the
+ * article is opened in the browser as before.
+ */
+public class ReaderActivity extends AppCompatActivity {
+
+    /**
+     * Intent extras: Guardian content id, title, website URL, and the uptime of the tap
+     */
+    public static final String EXTRA_ID = "com.example.android.newsfeed.extra.ID";
+    public static final String EXTRA_TITLE = "com.example.android.newsfeed.extra.TITLE";
+    public static final String EXTRA_URL = "com.example.android.newsfeed.extra.URL";
+    public static final String EXTRA_CLICK_UPTIME = "com.example.android.newsfeed.extra.CLICK_UPTIME";
+
+    /**
+     * Instance state keys, so a configuration change does not count the open twice
+     */
+    private static final String STATE_PREFETCHED = "prefetched";
+    private static final String STATE_OPEN_RECORDED = "open_recorded";
+
+    private WebView mWebView;
+    private View mLoadingIndicator;
+
+    private String mTitle;
+    private String mUrl;
+    private long mClickUptime;
+
+    /**
+     * Whether the body came from the cache, and whether the open has been recorded yet
+     */
+    private boolean mPrefetched;
+    private boolean mOpenRecorded;
+
+    /**
+     * Download running for a cache miss, or null if there is none
+     */
+    private ArticleTask mArticleTask;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate( savedInstanceState );
+        setContentView( R.layout.activity_reader );
+
+        Intent intent = getIntent();
+        String id = intent.getStringExtra( EXTRA_ID );
+        mTitle = intent.getStringExtra( EXTRA_TITLE );
+        mUrl = intent.getStringExtra( EXTRA_URL );
+        mClickUptime = intent.getLongExtra( EXTRA_CLICK_UPTIME, SystemClock.uptimeMillis() );
+        setTitle( mTitle );
+
+        mLoadingIndicator = findViewById( R.id.reader_loading_indicator );
+        mWebView = findViewById( R.id.reader_web_view );
+        mWebView.setWebViewClient( new WebViewClient() {
+            @Override
+            public void onPageFinished(WebView view, String url) {
+                mLoadingIndicator.setVisibility( View.GONE );
+                // Only the first page counts; later ones are links followed inside the reader.
+                if (!mOpenRecorded) {
+                    mOpenRecorded = true;
+                    ArticlePrefetcher.recordOpen( mPrefetched,
+                            SystemClock.uptimeMillis() - mClickUptime );
+                }
+            }
+        } );
+
+        if (id == null) {
+            openInBrowser();
+            return;
+        }
+
+        String body = ArticleCache.get( id );
+        if (savedInstanceState == null) {
+            mPrefetched = body != null;
+        } else {
+            // Keep how the article was first opened; the cache may have been filled since.
+            mPrefetched = savedInstanceState.getBoolean( STATE_PREFETCHED );
+            mOpenRecorded = savedInstanceState.getBoolean( STATE_OPEN_RECORDED );
+        }
+        if (body != null) {
+            showBody( body );
+        } else {
+            mArticleTask = new ArticleTask( this );
+            mArticleTask.execute( id );
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        // The download itself keeps running and fills the cache, so a recreated activity
+        // picks it up; only its result is no longer delivered to this instance.
+        if (mArticleTask != null) {
+            mArticleTask.cancel( false );
+        }
+        mWebView.destroy();
+        super.onDestroy();
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState( outState );
+        outState.putBoolean( STATE_PREFETCHED, mPrefetched );
+        outState.putBoolean( STATE_OPEN_RECORDED, mOpenRecorded );
+    }
+
+    /**
+     * Load the article body into the WebView, with the title on top.
+     */
+    private void showBody(String body) {
+        String html = "<html><head>"
+                + "<meta name=\"viewport\" content=\"width=device-width, initial-scale=1\">"
+                + "</head><body><h1>" + TextUtils.htmlEncode( mTitle ) + "</h1>"
+                + body + "</body></html>";
+        // Use the article's own url as base, so relative links and images resolve.
+        mWebView.loadDataWithBaseURL( mUrl, html, "text/html", "UTF-8", null );
+    }
+
+    /**
+     * Fall back to the browser when the body could not be loaded.
+     */
+    private void openInBrowser() {
+        Intent websiteIntent = new Intent( Intent.ACTION_VIEW, Uri.parse( mUrl ) );
+        startActivity( websiteIntent );
+        finish();
+    }
+
+    /**
+     * Downloads the body on a cache miss. Holds the activity weakly so it can be
+     * destroyed while the request is running.
+     */
+    private static class ArticleTask extends AsyncTask <String, Void, String> {
+
+        private final WeakReference <ReaderActivity> mActivity;
+        private final Context mAppContext;
+
+        ArticleTask(ReaderActivity activity) {
+            mActivity = new WeakReference <>( activity );
+            mAppContext = activity.getApplicationContext();
+        }
+
+        @Override
+        protected String doInBackground(String... ids) {
+            return ArticlePrefetcher.fetchNow( mAppContext, ids[0] );
+        }
+
+        @Override
+        protected void onPostExecute(String body) {
+            ReaderActivity activity = mActivity.get();
+            if (activity == null || activity.isFinishing() || activity.isDestroyed()) {
+                return;
+            }
+            if (body == null) {
+                activity.openInBrowser();
+            } else {
+                activity.showBody( body );
+            }
+        }
+    }
+}
@@ -0,0 +1,465 @@
+package com.example.android.newsfeed;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sits in front of {@link QueryUtils} and keeps the app within the quota of the shared
+ * Guardian api key.
+ * <p>
+ * Requests go through a token bucket, are counted against a daily quota that survives
+ * restarts, and are held back after a 429 for as long as the server's Retry-After asks,
+ * or for a few minutes after a 403.
+ * When a request is not allowed, or fails, the last good response for the same url is
+ * returned from disk instead.
+ */
+public final class RequestGovernor {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = RequestGovernor.class.getSimpleName();
+
+    /**
+     * Requests allowed per day for the api key
+     */
+    public static final int DAILY_QUOTA = 500;
+
+    /**
+     * Requests that can be made back to back before the rate limit kicks in
+     */
+    private static final int BUCKET_CAPACITY = 3;
+
+    /**
+     * Time it takes to earn back one request
+     */
+    private static final long REFILL_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Longest time a request waits for a token when there is nothing cached to fall back on
+     */
+    private static final long MAX_TOKEN_WAIT_MILLIS = 3000;
+
+    /**
+     * Wait passed to {@link #acquire(long, int, int)} by callers that must not be dropped by the
+     * token bucket, such as prefetches running on their own background thread
+     */
+    private static final long WAIT_UNTIL_FREE = Long.MAX_VALUE;
+
+    /**
+     * Tokens a prefetch leaves in the bucket, so a waiting prefetch never takes the token a
+     * feed reload or article open needs
+     */
+    private static final int PREFETCH_TOKENS_LEFT = 1;
+
+    /**
+     * Requests of the daily quota that prefetching leaves for requests the user waits on
+     */
+    public static final int PREFETCH_RESERVE = 100;
+
+    /**
+     * Back-off used when a 429 arrives without a Retry-After header
+     */
+    private static final long DEFAULT_RETRY_AFTER_SECONDS = 60;
+
+    /**
+     * Back-off used after a 403, which may come from the quota, a revoked key or a proxy
+     */
+    private static final long FORBIDDEN_BACKOFF_SECONDS = 300;
+
+    /**
+     * Name of the preferences file and keys the quota accounting is stored in
+     */
+    private static final String PREFS_NAME = "request_governor";
+    private static final String KEY_DAY = "day";
+    private static final String KEY_REQUESTS_TODAY = "requests_today";
+    private static final String KEY_THROTTLED_COUNT = "throttled_count";
+    private static final String KEY_BLOCKED_UNTIL = "blocked_until";
+
+    /**
+     * Directory under the cache dir that holds the last good response per url
+     */
+    private static final String CACHE_DIR_NAME = "feed_cache";
+
+    /**
+     * Most responses kept in the cache dir; the least recently written are deleted first
+     */
+    private static final int MAX_CACHE_FILES = 16;
+
+    /**
+     * Extension of the cached response files
+     */
+    private static final String CACHE_FILE_SUFFIX = ".json";
+
+    private static RequestGovernor sInstance;
+
+    private final SharedPreferences mPrefs;
+    private final File mCacheDir;
+
+    /**
+     * Tokens currently in the bucket and the uptime they were last topped up at
+     */
+    private double mTokens = BUCKET_CAPACITY;
+    private long mLastRefillMillis = SystemClock.elapsedRealtime();
+
+    private RequestGovernor(Context context) {
+        mPrefs = context.getSharedPreferences( PREFS_NAME, Context.MODE_PRIVATE );
+        mCacheDir = new File( context.getCacheDir(), CACHE_DIR_NAME );
+    }
+
+    /**
+     * Returns the process wide governor.
+     */
+    public static synchronized RequestGovernor get(Context context) {
+        if (sInstance == null) {
+            sInstance = new RequestGovernor( context.getApplicationContext() );
+        }
+        return sInstance;
+    }
+
+    /**
+     * Fetch and parse the news feed for the given url. Must be called on a background
+     * thread, since it may wait for the rate limit and reads from disk.
+     */
+    public List <NewsFeed> fetchNewsFeedData(String requestUrl) {
+        return QueryUtils.extractResultsFromJson( fetchJson( requestUrl ) );
+    }
+
+    /**
+     * Return the cached news feed for the given url without sending a request, for when
+     * there is no network. Returns null if nothing is cached. Must be called on a background
+     * thread, since it reads from disk.
+     */
+    public List <NewsFeed> readCachedNewsFeedData(String requestUrl) {
+        return QueryUtils.extractResultsFromJson( readCache( requestUrl ) );
+    }
+
+    /**
+     * Fetch the body for the given url, or fall back to the cached body if the request is
+     * not allowed right now or fails. Returns null if there is nothing to return.
+     */
+    public String fetchJson(String requestUrl) {
+        // The cache is only a fallback, so only check that it is there until it is needed.
+        boolean hasCache = cacheFile( requestUrl ).exists();
+
+        if (!acquire( hasCache ? 0 : MAX_TOKEN_WAIT_MILLIS, 0, 0 )) {
+            Log.i( LOG_TAG, "Request throttled, serving cached results. " + getUsageSummary() );
+            return hasCache ? readCache( requestUrl ) : null;
+        }
+
+        QueryUtils.HttpResponse response = send( requestUrl );
+        if (response.isSuccessful()) {
+            writeCache( requestUrl, response.getBody() );
+            return response.getBody();
+        }
+
+        Log.i( LOG_TAG, "Request failed with " + response.getResponseCode()
+                + ", serving cached results. " + getUsageSummary() );
+        return hasCache ? readCache( requestUrl ) : null;
+    }
+
+    /**
+     * Fetch the body for the given url without the disk cache, for callers that keep their
+     * own cache. A prefetch runs on its own background thread, so it waits for as long as it
+     * takes to get a token rather than being dropped. It gives way to requests the user is
+     * actually waiting on: it only takes a token when one would be left in the bucket, and
+     * leaves {@link #PREFETCH_RESERVE} requests of the daily quota. Returns null if the
+     * request was not allowed or failed.
+     */
+    public String fetchUncached(String requestUrl, boolean prefetch) {
+        if (!acquire( prefetch ? WAIT_UNTIL_FREE : MAX_TOKEN_WAIT_MILLIS,
+                prefetch ? PREFETCH_RESERVE : 0, prefetch ? PREFETCH_TOKENS_LEFT : 0 )) {
+            Log.i( LOG_TAG, "Request throttled. " + getUsageSummary() );
+            return null;
+        }
+
+        QueryUtils.HttpResponse response = send( requestUrl );
+        return response.isSuccessful() ? response.getBody() : null;
+    }
+
+    /**
+     * Send the request and react to the server's rate limiting.
+     */
+    private QueryUtils.HttpResponse send(String requestUrl) {
+        QueryUtils.HttpResponse response = QueryUtils.fetchResponse( requestUrl );
+
+        if (response.getResponseCode() == 429) {
+            long retryAfter = response.getRetryAfterSeconds();
+            if (retryAfter == QueryUtils.HttpResponse.NO_RETRY_AFTER) {
+                retryAfter = DEFAULT_RETRY_AFTER_SECONDS;
+            }
+            onRateLimited( retryAfter );
+        } else if (response.getResponseCode() == HttpURLConnection.HTTP_FORBIDDEN) {
+            // The Guardian answers 403 once the key is over its limit for the day, but so can
+            // a proxy or captive portal, so back off for a while rather than for the whole day.
+            onRateLimited( FORBIDDEN_BACKOFF_SECONDS );
+        }
+        return response;
+    }
+
+    /**
+     * Returns the number of requests sent today.
+     */
+    public synchronized int getRequestsToday() {
+        rollOverDay();
+        return mPrefs.getInt( KEY_REQUESTS_TODAY, 0 );
+    }
+
+    /**
+     * Returns the number of requests that can still be sent today.
+     */
+    public synchronized int getRemainingDailyQuota() {
+        return Math.max( 0, DAILY_QUOTA - getRequestsToday() );
+    }
+
+    /**
+     * Returns the number of requests that were not sent, or were rejected by the server,
+     * because of rate limiting or quota. This count is kept across restarts.
+     */
+    public synchronized int getThrottledCount() {
+        return mPrefs.getInt( KEY_THROTTLED_COUNT, 0 );
+    }
+
+    /**
+     * Returns a one line summary of budget usage, for logging.
+     */
+    public synchronized String getUsageSummary() {
+        return "Used " + getRequestsToday() + "/" + DAILY_QUOTA + " requests today, "
+                + getThrottledCount() + " throttled.";
+    }
+
+    /**
+     * Take a token for one request, waiting up to {@code maxWaitMillis} for one to be free.
+     * Returns false if the request should not be sent. When there is no cache to fall back
+     * on, a short wait for the next token is preferred over showing nothing. The request is
+     * also refused if it would eat into the last {@code reservedQuota} requests of the day,
+     * and only goes ahead once {@code tokensToLeave} more tokens would remain in the bucket.
+     */
+    private synchronized boolean acquire(long maxWaitMillis, int reservedQuota, int tokensToLeave) {
+        if (isBlocked( reservedQuota )) {
+            countThrottled();
+            return false;
+        }
+
+        refill();
+        long deadline = maxWaitMillis == WAIT_UNTIL_FREE
+                ? Long.MAX_VALUE : SystemClock.elapsedRealtime() + maxWaitMillis;
+        int tokensNeeded = 1 + tokensToLeave;
+        while (mTokens < tokensNeeded) {
+            long remainingMillis = deadline - SystemClock.elapsedRealtime();
+            if (remainingMillis <= 0) {
+                countThrottled();
+                return false;
+            }
+            // wait(0) would block forever, so always wait at least a millisecond.
+            long waitMillis = Math.max( 1, Math.min( remainingMillis,
+                    (long) Math.ceil( (tokensNeeded - mTokens) * REFILL_INTERVAL_MILLIS ) ) );
+            try {
+                wait( waitMillis );
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            // Another caller may have been rate limited by the server while we waited.
+            if (isBlocked( reservedQuota )) {
+                countThrottled();
+                return false;
+            }
+            refill();
+        }
+
+        mTokens -= 1;
+        mPrefs.edit()
+                .putInt( KEY_REQUESTS_TODAY, mPrefs.getInt( KEY_REQUESTS_TODAY, 0 ) + 1 )
+                .apply();
+        return true;
+    }
+
+    /**
+     * Returns true if requests are on hold after a 429 or 403, or if sending one would eat
+     * into the last {@code reservedQuota} requests of the day.
+     */
+    private boolean isBlocked(int reservedQuota) {
+        rollOverDay();
+        return System.currentTimeMillis() < mPrefs.getLong( KEY_BLOCKED_UNTIL, 0 )
+                || mPrefs.getInt( KEY_REQUESTS_TODAY, 0 ) >= DAILY_QUOTA - reservedQuota;
+    }
+
+    /**
+     * Top up the bucket for the time that has passed since the last refill.
+     */
+    private void refill() {
+        long now = SystemClock.elapsedRealtime();
+        mTokens = Math.min( BUCKET_CAPACITY,
+                mTokens + (double) (now - mLastRefillMillis) / REFILL_INTERVAL_MILLIS );
+        mLastRefillMillis = now;
+    }
+
+    /**
+     * Reset the daily count when the (UTC) day has changed since the last request.
+     */
+    private void rollOverDay() {
+        long today = TimeUnit.MILLISECONDS.toDays( System.currentTimeMillis() );
+        if (mPrefs.getLong( KEY_DAY, -1 ) != today) {
+            mPrefs.edit()
+                    .putLong( KEY_DAY, today )
+                    .putInt( KEY_REQUESTS_TODAY, 0 )
+                    .apply();
+        }
+    }
+
+    private synchronized void onRateLimited(long retryAfterSeconds) {
+        mPrefs.edit()
+                .putLong( KEY_BLOCKED_UNTIL,
+                        System.currentTimeMillis() + TimeUnit.SECONDS.toMillis( retryAfterSeconds ) )
+                .apply();
+        mTokens = 0;
+        countThrottled();
+    }
+
+    private void countThrottled() {
+        mPrefs.edit().putInt( KEY_THROTTLED_COUNT, mPrefs.getInt( KEY_THROTTLED_COUNT, 0 ) + 1 ).apply();
+    }
+
+    /**
+     * Returns the cache file for the given url. The name is a digest of the url without its
+     * api key, so rotating the key keeps the cached responses.
+     */
+    private File cacheFile(String requestUrl) {
+        Uri uri = Uri.parse( requestUrl );
+        Uri.Builder keyBuilder = uri.buildUpon().clearQuery();
+        for (String name : uri.getQueryParameterNames()) {
+            if (name.equals( "api-key" )) {
+                continue;
+            }
+            for (String value : uri.getQueryParameters( name )) {
+                keyBuilder.appendQueryParameter( name, value );
+            }
+        }
+        String key = keyBuilder.toString();
+
+        String fileName;
+        try {
+            byte[] digest = MessageDigest.getInstance( "MD5" ).digest( key.getBytes( Charset.forName( "UTF-8" ) ) );
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append( String.format( "%02x", b ) );
+            }
+            fileName = hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android release ships MD5, so this is not expected to happen.
+            Log.e( LOG_TAG, "MD5 is not available.", e );
+            fileName = Integer.toHexString( key.hashCode() );
+        }
+        return new File( mCacheDir, fileName + CACHE_FILE_SUFFIX );
+    }
+
+    /**
+     * Delete the least recently written responses once there are more than
+     * {@link #MAX_CACHE_FILES}, including ones left behind by older cache file names.
+     */
+    private void pruneCache() {
+        File[] files = mCacheDir.listFiles();
+        if (files == null || files.length <= MAX_CACHE_FILES) {
+            return;
+        }
+        Arrays.sort( files, new Comparator <File>() {
+            @Override
+            public int compare(File first, File second) {
+                return Long.compare( second.lastModified(), first.lastModified() );
+            }
+        } );
+        for (int i = MAX_CACHE_FILES; i < files.length; i++) {
+            if (!files[i].delete()) {
+                Log.e( LOG_TAG, "Could not delete old cached response " + files[i].getName() );
+            }
+        }
+    }
+
+    /**
+     * Read the last good body for the given url, or return null if there is none.
+     */
+    private String readCache(String requestUrl) {
+        MainThreadMonitor.checkNotMainThread( "disk read" );
+        File file = cacheFile( requestUrl );
+        if (!file.exists()) {
+            return null;
+        }
+        InputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream( file );
+            byte[] buffer = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < buffer.length) {
+                int read = inputStream.read( buffer, offset, buffer.length - offset );
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+            return new String( buffer, 0, offset, Charset.forName( "UTF-8" ) );
+        } catch (IOException e) {
+            Log.e( LOG_TAG, "Problem reading the cached response.", e );
+            return null;
+        } finally {
+            closeQuietly( inputStream );
+        }
+    }
+
+    /**
+     * Store the body as the last good response for the given url.
+     */
+    private void writeCache(String requestUrl, String body) {
+        MainThreadMonitor.checkNotMainThread( "disk write" );
+        if (!mCacheDir.exists() && !mCacheDir.mkdirs()) {
+            Log.e( LOG_TAG, "Could not create the response cache directory." );
+            return;
+        }
+        File file = cacheFile( requestUrl );
+        File tmpFile = new File( mCacheDir, file.getName() + ".tmp" );
+        OutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream( tmpFile );
+            outputStream.write( body.getBytes( Charset.forName( "UTF-8" ) ) );
+            outputStream.close();
+            outputStream = null;
+            if (!tmpFile.renameTo( file )) {
+                Log.e( LOG_TAG, "Could not replace the cached response." );
+            }
+            pruneCache();
+        } catch (IOException e) {
+            Log.e( LOG_TAG, "Problem writing the cached response.", e );
+        } finally {
+            closeQuietly( outputStream );
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing useful left to do with the stream.
+            }
+        }
+    }
+}
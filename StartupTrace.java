@@ -0,0 +1,75 @@
+package com.example.android.newsfeed;
+
+import android.os.SystemClock;
+import android.support.v4.os.TraceCompat;
+import android.util.Log;
+
+/**
+ * Lightweight startup tracing. Sections show up in systrace / the Android Studio profiler,
+ * and the marks are logged as milliseconds since the process started so that
+ * time-to-first-row can be compared before and after a change with
+ * {@code adb logcat -s StartupTrace}.
+ */
+public final class StartupTrace {
+
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = StartupTrace.class.getSimpleName();
+
+    /**
+     * Uptime at which {@link NewsFeedApplication} was created, or 0 if it has not been yet.
+     */
+    private static long sProcessStartMillis;
+
+    /**
+     * Whether the first list row has already been reported.
+     */
+    private static boolean sFirstRowReported;
+
+    private StartupTrace() {
+    }
+
+    /**
+     * Record the start of the process. Called once from {@link NewsFeedApplication}.
+     */
+    public static void processStarted() {
+        sProcessStartMillis = SystemClock.uptimeMillis();
+        Log.i( LOG_TAG, "+0ms process started" );
+    }
+
+    /**
+     * Log a named point in the startup sequence.
+     */
+    public static void mark(String label) {
+        if (sProcessStartMillis == 0) {
+            return;
+        }
+        Log.i( LOG_TAG, "+" + (SystemClock.uptimeMillis() - sProcessStartMillis) + "ms " + label );
+    }
+
+    /**
+     * Log the time to the first list row. Only the first call after process start is reported.
+     */
+    public static void firstRowBound() {
+        if (sFirstRowReported) {
+            return;
+        }
+        sFirstRowReported = true;
+        mark( "first row bound (time-to-first-row)" );
+    }
+
+    /**
+     * Begin a systrace section. Must be ended on the same thread.
+     */
+    public static void beginSection(String sectionName) {
+        TraceCompat.beginSection( sectionName );
+    }
+
+    /**
+     * End the most recent systrace section on this thread.
+     */
+    public static void endSection() {
+        TraceCompat.endSection();
+    }
+}